@@ -23,23 +23,34 @@ public class HidCommand {
     private static final int GET_RX_IDX_GP1_BTN_CTRL      = 4;
     private static final int GET_RX_IDX_GP1_BTN_DATA      = 5;
 
+    private static final int REPORT_SIZE                  = 64;
+
     private int mAction;
     private int mPressedColor;
     private int mReleasedColor;
 
-    private ByteBuffer mTxData;
-    private ByteBuffer mRxData;
+    private final ByteBuffer mTxData;
+    private final ByteBuffer mRxData;
 
 
-    public HidCommand(int action, int pressedcolor, int releasedcolor) {
-        mAction = action;
-        mPressedColor = pressedcolor;
-        mReleasedColor = releasedcolor;
+    /**
+     * The report buffers are allocated once and reused by every transaction.
+     */
+    public HidCommand() {
+        mTxData = ByteBuffer.allocateDirect(REPORT_SIZE);
+        mRxData = ByteBuffer.allocateDirect(REPORT_SIZE);
     }
 
 
-    public ByteBuffer generate() {
-        mTxData = ByteBuffer.allocate(64);
+    public ByteBuffer generate(int action, int pressedcolor, int releasedcolor) {
+        mAction = action;
+        mPressedColor = pressedcolor;
+        mReleasedColor = releasedcolor;
+        //
+        mTxData.clear();
+        for (int i = 0; i < REPORT_SIZE; i++) {
+            mTxData.put(i, (byte) 0x00);
+        }
 
         switch (mAction) {
             case StatusButton.TX_BTN_OFF:
@@ -51,8 +62,7 @@ public class HidCommand {
             case StatusButton.TX_BTN_RELEASED:
                 mTxData.put(SET_TX_IDX_START, (byte) 0x50);
                 if (mPressedColor == StatusButton.LIGHT_COLOR_NONE || mReleasedColor == StatusButton.LIGHT_COLOR_NONE) {
-                    mTxData.clear();
-                    mTxData = null;
+                    return null;
                 } else {
                     Log.i(TAG, "Set color, action(" + mAction + "), pressed color(" + mPressedColor + "), " + "released color(" + mReleasedColor + ").");
                     setColorOff();
@@ -70,6 +80,12 @@ public class HidCommand {
     }
 
 
+    public ByteBuffer getRxData() {
+        mRxData.clear();
+        return mRxData;
+    }
+
+
     public int resolveBtnStatus(ByteBuffer rxData) {
         byte result = rxData.get(GET_RX_IDX_GP1_BTN_CTRL);
         return result == 0 ? StatusButton.TX_BTN_PRESSED : StatusButton.TX_BTN_RELEASED;
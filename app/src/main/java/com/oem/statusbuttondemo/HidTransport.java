@@ -0,0 +1,34 @@
+package com.oem.statusbuttondemo;
+
+import android.content.Intent;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+
+/**
+ * Device side of the Status Button. All calls except {@link #matches(Intent)} are made
+ * on the button handler thread.
+ */
+interface HidTransport {
+    boolean matches(Intent intent);
+
+    /**
+     * Finds and opens the button, returns one of StatusButton.RET_*.
+     */
+    int open();
+
+    void describe(HashMap<String, String> description);
+
+    /**
+     * USB product id of the opened button, 0 when none is open.
+     */
+    int getProductId();
+
+    /**
+     * Sends one 64-byte report and reads the reply into rxData.
+     */
+    boolean transfer(ByteBuffer txData, ByteBuffer rxData);
+
+    void close();
+}
@@ -16,8 +16,8 @@ import android.widget.Spinner;
 import android.widget.TextView;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 
 public class MainActivity extends AppCompatActivity implements AdapterView.OnItemSelectedListener, AdapterView.OnItemClickListener {
@@ -90,7 +90,11 @@ public class MainActivity extends AppCompatActivity implements AdapterView.OnIte
     @Override
     protected void onStart() {
         super.onStart();
-        updateUi();
+        if (mButton.getDeviceDescription().isEmpty()) {
+            showLastKnownDevice();
+        } else {
+            updateUi();
+        }
     }
 
 
@@ -129,8 +133,29 @@ public class MainActivity extends AppCompatActivity implements AdapterView.OnIte
     }
 
 
+    private void showLastKnownDevice() {
+        Map<String, String> description = mButton.getLastKnownDescription();
+        if (description.isEmpty()) {
+            updateUi();
+            return;
+        }
+
+        // Shown until the Status Button reports the connection result.
+        mSnField.setText(description.get("sn"));
+        mVidField.setText(description.get("vid"));
+        mPidField.setText(description.get("pid"));
+        mManufacturerField.setText(description.get("manufacturer"));
+        mProductField.setText(description.get("product"));
+        //
+        mBtnStatus.setText("Connecting");
+        //
+        mSpinnerPressed.setEnabled(false);
+        mSpinnerReleased.setEnabled(false);
+    }
+
+
     private void updateUi() {
-        HashMap<String, String> description = mButton.getDeviceDescription();
+        Map<String, String> description = mButton.getDeviceDescription();
         if (description.isEmpty()) {
             mSnField.setText("Unknown");
             mVidField.setText("Unknown");
@@ -1,21 +1,16 @@
 package com.oem.statusbuttondemo;
 
-import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.hardware.usb.UsbDevice;
-import android.hardware.usb.UsbDeviceConnection;
-import android.hardware.usb.UsbEndpoint;
-import android.hardware.usb.UsbInterface;
+import android.content.SharedPreferences;
 import android.hardware.usb.UsbManager;
-import android.hardware.usb.UsbRequest;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
-import android.os.SystemClock;
+import android.os.MessageQueue;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
@@ -24,7 +19,9 @@ import androidx.lifecycle.LifecycleObserver;
 import androidx.lifecycle.OnLifecycleEvent;
 
 import java.nio.ByteBuffer;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Map;
 
 
 public class StatusButton implements LifecycleObserver  {
@@ -55,37 +52,54 @@ public class StatusButton implements LifecycleObserver  {
     public static final int MSG_SET_LIGHT_COLOR             = 2;
     public static final int MSG_SET_LIGHT_OFF               = 3;
     public static final int MSG_INIT_BUTTON                 = 4;
+    public static final int MSG_POLL_STATUS                 = 5;
+    public static final int MSG_CONNECT                     = 6;
+    public static final int MSG_SET_PRESSED_COLOR           = 7;
+    public static final int MSG_SET_RELEASED_COLOR          = 8;
 
     private static final String TAG = "StatusButton";
 
-    private final int USB_VID = 0x04E7;
-    private final int USB_PID = 0xA106;
+    private static final long POLL_INTERVAL_MS              = 300;
+
+    private static final String PREFS_NAME                  = "StatusButton";
+    private static final String[] DESCRIPTION_KEYS          = {"sn", "vid", "pid", "manufacturer", "product"};
 
     private final Context mCtxt;
     private final Handler mUiHandler;
     private final StatusButtonReceiver mReceiver;
-    private final UsbManager mUsbManager;
-    private final HandlerThread mBtnHandlerThread;
-    private final BtnHandler mBtnHandler;
-    private final RetrieveBtnStatusTask mRetrieveBtnStatusTask;
-
-
-    private UsbDevice           mBtn;
-    private UsbEndpoint         mBtnEpOut;
-    private UsbEndpoint         mBtnEpIn;
-    private UsbDeviceConnection mBtnConnection;
-    private UsbInterface        mBtnInterface;
-    private UsbRequest          mBtnRequestIn;
-    private UsbRequest          mBtnRequestOut;
+    private final HidCommand mCommand;
+    private final SharedPreferences mLastKnown;
+    private final StartTask mStartTask;
+
+    private volatile HidTransport mTransport;
+    private volatile BtnHandler mBtnHandler;
+    private volatile boolean mStarted;
+    private HandlerThread mBtnHandlerThread;
+
+
+    // Owned by the button thread; the UI reads the copy published in mDescription.
     private HashMap<String, String> mBtnDescriptionMap;
+    private volatile Map<String, String> mDescription = Collections.emptyMap();
+    private volatile TelemetryExporter mTelemetry;
+    private boolean             mConnected;
 
-    private int mPressedColor  = LIGHT_COLOR_NONE;
-    private int mReleasedColor = LIGHT_COLOR_NONE;
+    // Only written on the button thread, setters post MSG_SET_*_COLOR instead.
+    private volatile int mPressedColor  = LIGHT_COLOR_NONE;
+    private volatile int mReleasedColor = LIGHT_COLOR_NONE;
 
     private int mBtnStatus;
 
 
+    /**
+     * Only records its arguments. The button thread and the USB device are set up once
+     * the main thread goes idle after ON_START, so they stay off the first frame.
+     */
     public StatusButton(Context ctxt, Lifecycle lifecycle, Handler handler) {
+        this(ctxt, lifecycle, handler, null);
+    }
+
+
+    StatusButton(Context ctxt, Lifecycle lifecycle, Handler handler, HidTransport transport) {
         mCtxt = ctxt;
         if (lifecycle != null) {
             lifecycle.addObserver(this);
@@ -93,43 +107,59 @@ public class StatusButton implements LifecycleObserver  {
         mUiHandler = handler;
         //
         mReceiver = new StatusButtonReceiver();
-        mUsbManager = (UsbManager) mCtxt.getSystemService(Context.USB_SERVICE);
-        mBtnRequestIn = new UsbRequest();
-        mBtnRequestOut = new UsbRequest();
+        mTransport = transport;
+        mCommand = new HidCommand();
         mBtnDescriptionMap = new HashMap<>();
-        //
-        mBtnHandlerThread = new HandlerThread("StatusButton");
-        mBtnHandlerThread.start();
-        mBtnHandler = new BtnHandler(mBtnHandlerThread.getLooper());
-        //
-        mRetrieveBtnStatusTask = new RetrieveBtnStatusTask();
-        mRetrieveBtnStatusTask.start();
+        mStartTask = new StartTask();
+        // Kicks off loading the cache in the background, ahead of getLastKnownDescription().
+        mLastKnown = mCtxt.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
     }
 
 
     public boolean isStatusButton(Intent intent) {
-        UsbDevice dev = (UsbDevice) intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
-        if (dev.getVendorId() == USB_VID && dev.getProductId() == USB_PID) {
-            return true;
-        } else {
-            return false;
+        HidTransport transport = mTransport;
+        return transport != null && transport.matches(intent);
+    }
+
+
+    /**
+     * Read-only snapshot, replaced by the button thread before every MSG_UPDATE_UI.
+     */
+    public Map<String, String> getDeviceDescription() {
+        return mDescription;
+    }
+
+
+    /**
+     * Description saved by the last successful connection, empty if there never was one.
+     */
+    public Map<String, String> getLastKnownDescription() {
+        HashMap<String, String> description = new HashMap<>();
+        for (String key : DESCRIPTION_KEYS) {
+            String value = mLastKnown.getString(key, null);
+            if (value != null) {
+                description.put(key, value);
+            }
         }
+        return description;
     }
 
 
-    public HashMap<String, String> getDeviceDescription() {
-        return mBtnDescriptionMap;
+    public void setTelemetryExporter(TelemetryExporter exporter) {
+        mTelemetry = exporter;
     }
 
 
     public void setPressedColor(int color) {
         Log.i(TAG, "Pressed color: " + color);
-        mPressedColor = color;
+        report(TelemetryExporter.EVT_PRESSED_COLOR, color);
 
-        Message msg = mBtnHandler.obtainMessage();
-        msg.what = MSG_SET_LIGHT_COLOR;
-        msg.arg1 = mBtnStatus;
-        mBtnHandler.sendMessage(msg);
+        if (mBtnHandler != null) {
+            Message msg = mBtnHandler.obtainMessage();
+            msg.what = MSG_SET_PRESSED_COLOR;
+            msg.arg1 = color;
+            mBtnHandler.sendMessage(msg);
+        }
     }
 
 
@@ -140,12 +170,14 @@ public class StatusButton implements LifecycleObserver  {
 
     public void setReleasedColor(int color) {
         Log.i(TAG, "Released color: " + color);
-        mReleasedColor = color;
+        report(TelemetryExporter.EVT_RELEASED_COLOR, color);
 
-        Message msg = mBtnHandler.obtainMessage();
-        msg.what = MSG_SET_LIGHT_COLOR;
-        msg.arg1 = mBtnStatus;
-        mBtnHandler.sendMessage(msg);
+        if (mBtnHandler != null) {
+            Message msg = mBtnHandler.obtainMessage();
+            msg.what = MSG_SET_RELEASED_COLOR;
+            msg.arg1 = color;
+            mBtnHandler.sendMessage(msg);
+        }
     }
 
 
@@ -154,6 +186,28 @@ public class StatusButton implements LifecycleObserver  {
     }
 
 
+    /**
+     * Turns the light off, closes the device and stops the button thread. Called on
+     * ON_DESTROY; the instance cannot be used afterwards.
+     */
+    public void release() {
+        Log.i(TAG, "Status Button is released.");
+
+        Looper.myQueue().removeIdleHandler(mStartTask);
+        if (mBtnHandlerThread != null) {
+            if (mBtnHandler != null) {
+                disconnect();
+            }
+            mBtnHandlerThread.quitSafely();
+        }
+    }
+
+
+    Looper getLooper() {
+        return mBtnHandlerThread == null ? null : mBtnHandlerThread.getLooper();
+    }
+
+
     @OnLifecycleEvent(Lifecycle.Event.ON_START)
     private void onStart() {
         Log.i(TAG, "Status Button is started.");
@@ -164,7 +218,13 @@ public class StatusButton implements LifecycleObserver  {
         filter.addAction(ACTION_DETACHED);
         mCtxt.registerReceiver(mReceiver, filter);
 
-        connect();
+        mStarted = true;
+        if (mBtnHandler != null) {
+            mBtnHandler.sendEmptyMessage(MSG_CONNECT);
+        } else if (mBtnHandlerThread == null) {
+            // The main queue first goes idle after the first frame has been drawn.
+            Looper.myQueue().addIdleHandler(mStartTask);
+        }
     }
 
 
@@ -174,62 +234,46 @@ public class StatusButton implements LifecycleObserver  {
 
         mCtxt.unregisterReceiver(mReceiver);
 
-        disconnect();
+        mStarted = false;
+        Looper.myQueue().removeIdleHandler(mStartTask);
+        if (mBtnHandler != null) {
+            disconnect();
+        }
     }
 
 
-    private int connect() {
-        Log.i(TAG, "Start to connect Status Button.");
-
-        int ret = RET_SUCCESS;
-        reset();
-
-        mBtn = findStatusButton();
-        if (mBtn == null) {
-            ret = RET_DEVICE_NOT_FOUND;
-        }
+    @OnLifecycleEvent(Lifecycle.Event.ON_DESTROY)
+    private void onDestroy() {
+        release();
+    }
 
-        if (ret == RET_SUCCESS && !mUsbManager.hasPermission(mBtn)) {
-            PendingIntent pi = PendingIntent.getBroadcast(mCtxt, 0, new Intent(ACTION_PERMISSION_REQUEST), 0);
-            mUsbManager.requestPermission(mBtn, pi);
-            ret = RET_NO_USB_PERMISSION;
-        }
 
-        if (ret == RET_SUCCESS) {
-            for (int i = 0; i < mBtn.getInterfaceCount(); i++) {
-                mBtnInterface = mBtn.getInterface(i);
-                if (mBtnInterface.getInterfaceClass() == 3) {
-                    for (int j = 0; j < mBtnInterface.getEndpointCount(); j++) {
-                        if (mBtnInterface.getEndpoint(j).getDirection() == 0) {
-                            mBtnEpOut = mBtnInterface.getEndpoint(j);
-                        } else {
-                            mBtnEpIn = mBtnInterface.getEndpoint(j);
-                        }
-                    }
-                    break;
-                }
-            }
+    /**
+     * Runs on the button thread, like every other access to the transport.
+     */
+    private int connect() {
+        Log.i(TAG, "Start to connect Status Button.");
 
-            if (mBtnEpOut == null || mBtnEpIn == null) {
-                ret = RET_USB_EP_NOT_FOUND;
-            }
-        }
+        stopPolling();
+        closeDevice();
 
-        if (ret == RET_SUCCESS) {
-            mBtnConnection = mUsbManager.openDevice(mBtn);
-            if (mBtnConnection == null ) {
-                return RET_USB_CONNECTION_FAILED;
-            }
-        }
+        int ret = mTransport.open();
 
         if (ret != RET_SUCCESS) {
             Log.i(TAG, "Status Button is failed to connect, " + ret);
+            report(TelemetryExporter.EVT_CONNECT_FAILED, ret);
+            mTransport.close();
             reset();
             mUiHandler.sendMessage(mUiHandler.obtainMessage(MSG_UPDATE_UI));
         } else {
             Log.i(TAG, "Status Button is connected.");
-            saveDescription();
+            report(TelemetryExporter.EVT_CONNECTED, mTransport.getProductId());
+            mConnected = true;
+            mTransport.describe(mBtnDescriptionMap);
+            publishDescription();
+            saveLastKnownDescription();
             mBtnHandler.sendMessageDelayed(mBtnHandler.obtainMessage(MSG_INIT_BUTTON), 500);
+            mBtnHandler.sendEmptyMessageDelayed(MSG_POLL_STATUS, POLL_INTERVAL_MS);
         }
 
         return ret;
@@ -244,132 +288,155 @@ public class StatusButton implements LifecycleObserver  {
     }
 
 
-    private UsbDevice findStatusButton() {
-        for (UsbDevice dev : mUsbManager.getDeviceList().values()) {
-            if (dev.getVendorId() == USB_VID && dev.getProductId() == USB_PID) {
-                Log.i(TAG, "Status Button is found.");
-                return dev;
+    /**
+     * Runs on the button thread. Only a device that was actually connected counts as a
+     * disconnect.
+     */
+    private void closeDevice() {
+        if (mConnected) {
+            report(TelemetryExporter.EVT_DISCONNECTED, 0);
+        }
+        mTransport.close();
+        reset();
+    }
+
+
+    private void saveLastKnownDescription() {
+        SharedPreferences.Editor editor = mLastKnown.edit();
+        for (String key : DESCRIPTION_KEYS) {
+            editor.putString(key, mBtnDescriptionMap.get(key));
+        }
+        editor.apply();
+    }
+
+
+    private void publishDescription() {
+        mDescription = Collections.unmodifiableMap(new HashMap<>(mBtnDescriptionMap));
+    }
+
+
+    private void stopPolling() {
+        mBtnHandler.removeMessages(MSG_POLL_STATUS);
+        mBtnHandler.removeMessages(MSG_INIT_BUTTON);
+        mBtnHandler.removeMessages(MSG_SET_LIGHT_COLOR);
+    }
+
+
+    private void transact(int action) {
+        if (!mConnected) {
+            return;
+        }
+        //
+        ByteBuffer txData = mCommand.generate(action, mPressedColor, mReleasedColor);
+        if (txData == null) {
+            return;
+        }
+        //
+        count(TelemetryExporter.CNT_TRANSACTIONS);
+        ByteBuffer rxData = mCommand.getRxData();
+        if (!mTransport.transfer(txData, rxData)) {
+            count(TelemetryExporter.CNT_TX_FAILURES);
+            report(TelemetryExporter.EVT_TX_FAILED, action);
+            return;
+        }
+
+        if (action == TX_BTN_STATUS) {
+            int status = mCommand.resolveBtnStatus(rxData);
+            if (status != mBtnStatus) {
+                Log.i(TAG, "Status transition: " + mBtnStatus + " -> " + status);
+                Message msg = mBtnHandler.obtainMessage();
+                msg.what = MSG_SET_LIGHT_COLOR;
+                msg.arg1 = status;
+                mBtnHandler.sendMessage(msg);
+                //
+                mBtnStatus = status;
+                report(TelemetryExporter.EVT_STATUS_CHANGED, status);
+                //
+                mBtnDescriptionMap.put("status", mBtnStatus == TX_BTN_PRESSED ? "Pressed" : "Released");
+                publishDescription();
+                mUiHandler.sendMessage(mUiHandler.obtainMessage(MSG_UPDATE_UI));
             }
         }
+    }
+
 
-        return null;
+    private void report(int event, int value) {
+        if (mTelemetry != null) {
+            mTelemetry.record(event, value);
+        }
     }
 
 
-    private void saveDescription() {
-        if (mBtn != null) {
-            mBtnDescriptionMap.clear();
-            mBtnDescriptionMap.put("sn", mBtn.getSerialNumber());
-            mBtnDescriptionMap.put("vid", String.valueOf(mBtn.getVendorId()));
-            mBtnDescriptionMap.put("pid", String.valueOf(mBtn.getProductId()));
-            mBtnDescriptionMap.put("manufacturer", mBtn.getManufacturerName());
-            mBtnDescriptionMap.put("product", mBtn.getProductName());
+    private void count(int counter) {
+        if (mTelemetry != null) {
+            mTelemetry.increment(counter);
         }
     }
 
 
     private void reset() {
-        mBtn = null;
-        mBtnEpOut = null;
-        mBtnEpIn = null;
-        mBtnConnection = null;
-        mBtnInterface = null;
+        mConnected = false;
         mBtnDescriptionMap.clear();
+        mDescription = Collections.emptyMap();
         mBtnStatus = TX_BTN_UNKNOWN;
         mPressedColor = LIGHT_COLOR_NONE;
         mReleasedColor = LIGHT_COLOR_NONE;
     }
 
 
-    class StatusButtonReceiver extends BroadcastReceiver {
+    class StartTask implements MessageQueue.IdleHandler {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            if (isStatusButton(intent)) {
-                switch (intent.getAction()) {
-                    case StatusButton.ACTION_PERMISSION_REQUEST:
-                        if (intent.getBooleanExtra(StatusButton.ACTION_PERMISSION_GRANTED, false)) {
-                            connect();
-                        }
-                        break;
+        public boolean queueIdle() {
+            Log.i(TAG, "Status Button thread is started.");
 
-                    case StatusButton.ACTION_ATTACHED:
-                    case StatusButton.ACTION_DETACHED:
-                        connect();
-                        break;
-                }
-            }
+            // Does not wait for the looper, BtnThread connects once it is prepared.
+            mBtnHandlerThread = new BtnThread();
+            mBtnHandlerThread.start();
+            return false;
         }
     }
 
 
-    class TransactionTask extends Thread {
-        private int mAction;
-
-        public TransactionTask(int action) {
-            mAction = action;
+    class BtnThread extends HandlerThread {
+        public BtnThread() {
+            super("StatusButton");
         }
 
         @Override
-        public void run() {
-            if (mBtnConnection == null) {
-                return;
+        protected void onLooperPrepared() {
+            if (mTransport == null) {
+                mTransport = new UsbHidTransport(mCtxt);
             }
-            //
-            HidCommand command = new HidCommand(mAction, mPressedColor, mReleasedColor);
-            ByteBuffer txData = command.generate();
-            if (txData == null) {
-                return;
+            if (mTelemetry == null && mCtxt.getApplicationContext() instanceof StatusButtonApp) {
+                mTelemetry = ((StatusButtonApp) mCtxt.getApplicationContext()).getTelemetryExporter();
             }
-            //
-            mBtnConnection.claimInterface(mBtnInterface, true);
-            //
-            mBtnRequestOut.initialize(mBtnConnection, mBtnEpOut);
-            mBtnRequestOut.queue(txData, txData.capacity());
-            if (mBtnConnection.requestWait() == null) {
-                return;
-            }
-            //
-            ByteBuffer rxData = ByteBuffer.allocate(64);
-            mBtnRequestIn.initialize(mBtnConnection, mBtnEpIn);
-            mBtnRequestIn.queue(rxData, rxData.capacity());
-            if (mBtnConnection.requestWait() == null) {
-                return;
-            }
-
-
-            if (mAction == TX_BTN_STATUS) {
-                int status = command.resolveBtnStatus(rxData);
-                if (status != mBtnStatus) {
-                    Log.i(TAG, "Status transition: " + mBtnStatus + " -> " + status);
-                    Message msg = mBtnHandler.obtainMessage();
-                    msg.what = MSG_SET_LIGHT_COLOR;
-                    msg.arg1 = status;
-                    mBtnHandler.sendMessage(msg);
-                    //
-                    mBtnStatus = status;
-                    //
-                    mBtnDescriptionMap.put("status", mBtnStatus == TX_BTN_PRESSED ? "Pressed" : "Released");
-                    mUiHandler.sendMessage(mUiHandler.obtainMessage(MSG_UPDATE_UI));
-                }
-            }
-
-            if (mAction == StatusButton.TX_BTN_OFF) {
-                mBtnHandler.removeCallbacksAndMessages(null);
-                reset();
+            mBtnHandler = new BtnHandler(getLooper());
+            // onStart()/onStop() write mStarted before reading mBtnHandler, so either they
+            // see the handler or this sees their state. Connecting inline keeps a
+            // disconnect posted by onStop() behind it.
+            if (mStarted) {
+                connect();
             }
         }
     }
 
 
-    class RetrieveBtnStatusTask extends Thread {
+    class StatusButtonReceiver extends BroadcastReceiver {
         @Override
-        public void run() {
-            while (true) {
-                if (mBtnConnection != null) {
-                    TransactionTask task = new TransactionTask(TX_BTN_STATUS);
-                    mBtnHandler.post(task);
+        public void onReceive(Context context, Intent intent) {
+            if (mBtnHandler != null && isStatusButton(intent)) {
+                switch (intent.getAction()) {
+                    case StatusButton.ACTION_PERMISSION_REQUEST:
+                        if (intent.getBooleanExtra(StatusButton.ACTION_PERMISSION_GRANTED, false)) {
+                            mBtnHandler.sendEmptyMessage(MSG_CONNECT);
+                        }
+                        break;
+
+                    case StatusButton.ACTION_ATTACHED:
+                    case StatusButton.ACTION_DETACHED:
+                        mBtnHandler.sendEmptyMessage(MSG_CONNECT);
+                        break;
                 }
-                SystemClock.sleep(300);
             }
         }
     }
@@ -382,13 +449,36 @@ public class StatusButton implements LifecycleObserver  {
 
         @Override
         public void handleMessage(@NonNull Message msg) {
-            TransactionTask task;
-
             switch (msg.what) {
+                case MSG_CONNECT:
+                    connect();
+                    break;
+
                 case MSG_SET_LIGHT_COLOR:
+                    transact(msg.arg1);
+                    break;
+
+                case MSG_SET_PRESSED_COLOR:
+                    mPressedColor = msg.arg1;
+                    transact(mBtnStatus);
+                    break;
+
+                case MSG_SET_RELEASED_COLOR:
+                    mReleasedColor = msg.arg1;
+                    transact(mBtnStatus);
+                    break;
+
                 case MSG_SET_LIGHT_OFF:
-                    task = new TransactionTask(msg.arg1);
-                    mBtnHandler.post(task);
+                    stopPolling();
+                    transact(msg.arg1);
+                    closeDevice();
+                    break;
+
+                case MSG_POLL_STATUS:
+                    transact(TX_BTN_STATUS);
+                    if (mConnected) {
+                        sendEmptyMessageDelayed(MSG_POLL_STATUS, POLL_INTERVAL_MS);
+                    }
                     break;
 
                 case MSG_INIT_BUTTON:
@@ -0,0 +1,29 @@
+package com.oem.statusbuttondemo;
+
+import android.app.Application;
+import android.provider.Settings;
+
+
+/**
+ * Owns the telemetry exporter for the whole process, so activity recreation never runs
+ * two exporters on the same spill file.
+ */
+public class StatusButtonApp extends Application {
+    private TelemetryExporter mTelemetry;
+
+
+    /**
+     * Returns null when the build has no telemetry host. The first call reads ANDROID_ID
+     * and starts the export thread, so it is made from the button thread, not the main
+     * thread.
+     */
+    public synchronized TelemetryExporter getTelemetryExporter() {
+        if (mTelemetry == null && !BuildConfig.TELEMETRY_HOST.isEmpty()) {
+            String androidId = Settings.Secure.getString(getContentResolver(), Settings.Secure.ANDROID_ID);
+            mTelemetry = new TelemetryExporter(BuildConfig.TELEMETRY_HOST, BuildConfig.TELEMETRY_PORT,
+                    getFilesDir(), androidId == null ? 0 : androidId.hashCode());
+            mTelemetry.start();
+        }
+        return mTelemetry;
+    }
+}
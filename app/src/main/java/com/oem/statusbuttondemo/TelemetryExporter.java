@@ -0,0 +1,492 @@
+package com.oem.statusbuttondemo;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * Batches Status Button events and counters into length-prefixed binary frames and
+ * sends them to a fleet collector over a non-blocking socket.
+ *
+ * Frame layout, big-endian:
+ * <pre>
+ *   int   length          bytes that follow this field
+ *   short magic           0x5342 ("SB")
+ *   byte  version
+ *   byte  reserved
+ *   int   station id
+ *   long  session         random per exporter instance
+ *   long  sequence        increases by one per frame within a session
+ *   short event count
+ *   short counter count
+ *   event[event count]    long timestamp (ms), int event, int value
+ *   long[counter count]   CNT_* values at the time the frame was built
+ * </pre>
+ *
+ * {@link #record(int, int)} and {@link #increment(int)} never block: when the queue is
+ * full or busy the event is dropped and counted in CNT_EVENTS_DROPPED. Frames that
+ * cannot be sent are appended to a spill file and replayed once the collector is back.
+ * The spill file outlives the process, so the collector drops replays per station id
+ * and session rather than by sequence alone.
+ */
+public class TelemetryExporter {
+    public static final String TAG = "StatusButton-Telemetry";
+
+    public static final int EVT_CONNECTED                   = 1;
+    public static final int EVT_CONNECT_FAILED              = 2;
+    public static final int EVT_DISCONNECTED                = 3;
+    public static final int EVT_STATUS_CHANGED              = 4;
+    public static final int EVT_PRESSED_COLOR               = 5;
+    public static final int EVT_RELEASED_COLOR              = 6;
+    public static final int EVT_TX_FAILED                   = 7;
+
+    public static final int CNT_TRANSACTIONS                = 0;
+    public static final int CNT_TX_FAILURES                 = 1;
+    public static final int CNT_EVENTS_DROPPED              = 2;
+    public static final int CNT_FRAMES_SENT                 = 3;
+    public static final int CNT_FRAMES_SPILLED              = 4;
+    public static final int CNT_FRAMES_DROPPED              = 5;
+    public static final int CNT_COUNT                       = 6;
+
+    static final short FRAME_MAGIC                          = 0x5342;
+    static final byte  FRAME_VERSION                        = 2;
+    static final int   FRAME_HEADER_SIZE                    = 28;
+    static final int   EVENT_SIZE                           = 16;
+
+    private static final int  QUEUE_CAPACITY                = 4096;
+    private static final int  MAX_BATCH                     = 512;
+    private static final long FLUSH_INTERVAL_MS             = 1000;
+    private static final long HEARTBEAT_INTERVAL_MS         = 30000;
+    private static final long IO_TIMEOUT_MS                 = 2000;
+    private static final long SPILL_LIMIT                   = 1024 * 1024;
+    private static final String SPILL_FILE                  = "telemetry.spill";
+
+    private final InetSocketAddress mCollector;
+    private final File mSpillFile;
+    private final int mStationId;
+    private final long mSession;
+    private final int mCapacity;
+    private final long mFlushIntervalMs;
+    private final int mBatchSize;
+
+    private final ReentrantLock mQueueLock = new ReentrantLock();
+    private final ByteBuffer mQueue;
+    private int mQueueHead;
+    private int mQueued;
+
+    private final AtomicLongArray mCounters = new AtomicLongArray(CNT_COUNT);
+    private final ByteBuffer mFrame;
+    private final ByteBuffer mSpillFrame;
+
+    private volatile ExportTask mExportTask;
+    private volatile boolean mRunning;
+    private long mSequence;
+    private long mLastFrameTime;
+    private int  mFrameEvents;
+
+    private Selector      mSelector;
+    private SocketChannel mChannel;
+    private FileChannel   mSpill;
+    private long          mSpillReadPos;
+
+
+    public TelemetryExporter(String host, int port, File spillDir, int stationId) {
+        this(host, port, spillDir, stationId, QUEUE_CAPACITY, FLUSH_INTERVAL_MS);
+    }
+
+
+    TelemetryExporter(String host, int port, File spillDir, int stationId, int capacity, long flushIntervalMs) {
+        mCollector = InetSocketAddress.createUnresolved(host, port);
+        mSpillFile = new File(spillDir, SPILL_FILE);
+        mStationId = stationId;
+        mSession = new Random().nextLong();
+        mCapacity = capacity;
+        mFlushIntervalMs = flushIntervalMs;
+        mBatchSize = Math.min(capacity, MAX_BATCH);
+        //
+        mQueue = ByteBuffer.allocateDirect(capacity * EVENT_SIZE).order(ByteOrder.BIG_ENDIAN);
+        mFrame = ByteBuffer.allocateDirect(4 + FRAME_HEADER_SIZE + mBatchSize * EVENT_SIZE + CNT_COUNT * 8)
+                .order(ByteOrder.BIG_ENDIAN);
+        mSpillFrame = ByteBuffer.allocate(mFrame.capacity()).order(ByteOrder.BIG_ENDIAN);
+    }
+
+
+    /**
+     * Starts a new export thread. After stop() this first waits for the previous thread
+     * to flush, so only one thread ever writes the spill file.
+     */
+    public void start() {
+        if (mRunning) {
+            return;
+        }
+        try {
+            if (!awaitStopped(2 * IO_TIMEOUT_MS)) {
+                Log.i(TAG, "Previous export thread is still flushing.");
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        Log.i(TAG, "Telemetry exporter is started, collector " + mCollector);
+        mRunning = true;
+        mExportTask = new ExportTask();
+        mExportTask.start();
+    }
+
+
+    /**
+     * Asks the export thread to flush the queue and exit; returns without waiting for it.
+     */
+    public void stop() {
+        if (!mRunning) {
+            return;
+        }
+        Log.i(TAG, "Telemetry exporter is stopped.");
+        mRunning = false;
+        LockSupport.unpark(mExportTask);
+    }
+
+
+    boolean awaitStopped(long timeoutMs) throws InterruptedException {
+        ExportTask task = mExportTask;
+        if (task == null) {
+            return true;
+        }
+        task.join(timeoutMs);
+        return !task.isAlive();
+    }
+
+
+    /**
+     * Queues one event. Safe to call from any thread, including the USB thread.
+     */
+    public void record(int event, int value) {
+        if (!mQueueLock.tryLock()) {
+            mCounters.incrementAndGet(CNT_EVENTS_DROPPED);
+            return;
+        }
+
+        int queued;
+        try {
+            if (mQueued == mCapacity) {
+                mCounters.incrementAndGet(CNT_EVENTS_DROPPED);
+                return;
+            }
+            int offset = ((mQueueHead + mQueued) % mCapacity) * EVENT_SIZE;
+            mQueue.putLong(offset, System.currentTimeMillis());
+            mQueue.putInt(offset + 8, event);
+            mQueue.putInt(offset + 12, value);
+            queued = ++mQueued;
+        } finally {
+            mQueueLock.unlock();
+        }
+
+        ExportTask task = mExportTask;
+        if (queued == mBatchSize && task != null) {
+            LockSupport.unpark(task);
+        }
+    }
+
+
+    public void increment(int counter) {
+        mCounters.incrementAndGet(counter);
+    }
+
+
+    public long getCounter(int counter) {
+        return mCounters.get(counter);
+    }
+
+
+    private boolean buildFrame(long now) {
+        mFrame.clear();
+        mFrame.position(4 + FRAME_HEADER_SIZE);
+
+        int head;
+        int count;
+        mQueueLock.lock();
+        try {
+            head = mQueueHead;
+            count = Math.min(mQueued, mBatchSize);
+        } finally {
+            mQueueLock.unlock();
+        }
+
+        // Producers only write past the queued slots, so these can be copied without the lock.
+        for (int i = 0; i < count; i++) {
+            int offset = ((head + i) % mCapacity) * EVENT_SIZE;
+            mFrame.putLong(mQueue.getLong(offset));
+            mFrame.putInt(mQueue.getInt(offset + 8));
+            mFrame.putInt(mQueue.getInt(offset + 12));
+        }
+
+        mQueueLock.lock();
+        try {
+            mQueueHead = (head + count) % mCapacity;
+            mQueued -= count;
+        } finally {
+            mQueueLock.unlock();
+        }
+
+        if (count == 0 && now - mLastFrameTime < HEARTBEAT_INTERVAL_MS) {
+            return false;
+        }
+        mFrameEvents = count;
+
+        for (int i = 0; i < CNT_COUNT; i++) {
+            mFrame.putLong(mCounters.get(i));
+        }
+
+        mFrame.putInt(0, mFrame.position() - 4);
+        mFrame.putShort(4, FRAME_MAGIC);
+        mFrame.put(6, FRAME_VERSION);
+        mFrame.put(7, (byte) 0);
+        mFrame.putInt(8, mStationId);
+        mFrame.putLong(12, mSession);
+        mFrame.putLong(20, mSequence++);
+        mFrame.putShort(28, (short) count);
+        mFrame.putShort(30, (short) CNT_COUNT);
+        mFrame.flip();
+
+        mLastFrameTime = now;
+        return true;
+    }
+
+
+    private boolean ensureConnected() {
+        if (mChannel != null) {
+            return true;
+        }
+
+        try {
+            if (mSelector == null) {
+                mSelector = Selector.open();
+            }
+            InetSocketAddress address = new InetSocketAddress(mCollector.getHostString(), mCollector.getPort());
+            mChannel = SocketChannel.open();
+            mChannel.configureBlocking(false);
+            if (!mChannel.connect(address)) {
+                SelectionKey key = mChannel.register(mSelector, SelectionKey.OP_CONNECT);
+                mSelector.select(IO_TIMEOUT_MS);
+                key.cancel();
+                mSelector.selectNow();
+                if (!mChannel.finishConnect()) {
+                    throw new IOException("connect timed out");
+                }
+            }
+            Log.i(TAG, "Collector is connected.");
+            return true;
+        } catch (IOException e) {
+            closeChannel();
+            return false;
+        }
+    }
+
+
+    private void write(ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            if (mChannel.write(data) == 0) {
+                SelectionKey key = mChannel.register(mSelector, SelectionKey.OP_WRITE);
+                int ready = mSelector.select(IO_TIMEOUT_MS);
+                key.cancel();
+                mSelector.selectNow();
+                if (ready == 0) {
+                    throw new IOException("write timed out");
+                }
+            }
+        }
+    }
+
+
+    private void send() {
+        if (ensureConnected()) {
+            try {
+                replaySpill();
+                write(mFrame);
+                mCounters.incrementAndGet(CNT_FRAMES_SENT);
+                return;
+            } catch (IOException e) {
+                Log.i(TAG, "Collector is disconnected, " + e.getMessage());
+                closeChannel();
+                mFrame.rewind();
+            }
+        }
+        spill();
+    }
+
+
+    private void spill() {
+        try {
+            if (mSpill == null) {
+                openSpill();
+            }
+            if (mSpill.size() + mFrame.remaining() > SPILL_LIMIT) {
+                mCounters.incrementAndGet(CNT_FRAMES_DROPPED);
+                return;
+            }
+            mSpill.position(mSpill.size());
+            while (mFrame.hasRemaining()) {
+                mSpill.write(mFrame);
+            }
+            mCounters.incrementAndGet(CNT_FRAMES_SPILLED);
+        } catch (IOException e) {
+            mCounters.incrementAndGet(CNT_FRAMES_DROPPED);
+        }
+    }
+
+
+    private void replaySpill() throws IOException {
+        if (mSpill == null) {
+            if (!mSpillFile.exists() || mSpillFile.length() == 0) {
+                return;
+            }
+            openSpill();
+        }
+
+        // Replay frame by frame so a failed write always restarts on a frame boundary.
+        while (mSpillReadPos < mSpill.size()) {
+            if (!readSpilledFrame(mSpillReadPos)) {
+                Log.i(TAG, "Spill file is corrupted, discarded.");
+                mCounters.incrementAndGet(CNT_FRAMES_DROPPED);
+                break;
+            }
+            write(mSpillFrame);
+            mSpillReadPos += mSpillFrame.limit();
+        }
+
+        mSpill.truncate(0);
+        mSpill.close();
+        mSpill = null;
+        mSpillReadPos = 0;
+    }
+
+
+    /**
+     * Opens the spill file and cuts off whatever follows the last whole frame, e.g. an
+     * append interrupted by the process being killed, so new frames are not written
+     * behind it.
+     */
+    private void openSpill() throws IOException {
+        mSpill = new RandomAccessFile(mSpillFile, "rw").getChannel();
+        mSpillReadPos = 0;
+
+        long position = 0;
+        while (position < mSpill.size() && readSpilledFrame(position)) {
+            position += mSpillFrame.limit();
+        }
+        if (position < mSpill.size()) {
+            Log.i(TAG, "Spill file ends in a partial frame, discarded.");
+            mSpill.truncate(position);
+            mCounters.incrementAndGet(CNT_FRAMES_DROPPED);
+        }
+    }
+
+
+    /**
+     * Reads the spilled frame at position into mSpillFrame, flipped for writing. Returns
+     * false when there is no whole frame of this version there.
+     */
+    private boolean readSpilledFrame(long position) throws IOException {
+        mSpillFrame.clear();
+        mSpillFrame.limit(4 + FRAME_HEADER_SIZE);
+        if (!readSpill(position)) {
+            return false;
+        }
+        int length = mSpillFrame.getInt(0);
+        if (length < FRAME_HEADER_SIZE || length > mSpillFrame.capacity() - 4 ||
+                mSpillFrame.getShort(4) != FRAME_MAGIC || mSpillFrame.get(6) != FRAME_VERSION) {
+            return false;
+        }
+        mSpillFrame.limit(4 + length);
+        if (!readSpill(position)) {
+            return false;
+        }
+        mSpillFrame.flip();
+        return true;
+    }
+
+
+    private boolean readSpill(long position) throws IOException {
+        while (mSpillFrame.hasRemaining()) {
+            if (mSpill.read(mSpillFrame, position + mSpillFrame.position()) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    private void closeChannel() {
+        if (mChannel != null) {
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                // Ignored, the channel is discarded anyway.
+            }
+            mChannel = null;
+        }
+    }
+
+
+    private void close() {
+        closeChannel();
+        try {
+            if (mSelector != null) {
+                mSelector.close();
+                mSelector = null;
+            }
+            if (mSpill != null) {
+                mSpill.close();
+                mSpill = null;
+            }
+        } catch (IOException e) {
+            // Ignored, nothing left to flush.
+        }
+    }
+
+
+    class ExportTask extends Thread {
+        public ExportTask() {
+            super("StatusButton-Telemetry");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (mRunning) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(mFlushIntervalMs));
+                // Keep draining while full batches are waiting.
+                while (buildFrame(System.currentTimeMillis())) {
+                    send();
+                    if (mFrameEvents < mBatchSize) {
+                        break;
+                    }
+                }
+            }
+            // Flush whatever is left before exiting.
+            while (buildFrame(System.currentTimeMillis())) {
+                send();
+                if (mFrameEvents < mBatchSize) {
+                    break;
+                }
+            }
+            close();
+        }
+    }
+}
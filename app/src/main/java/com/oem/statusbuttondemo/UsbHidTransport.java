@@ -0,0 +1,165 @@
+package com.oem.statusbuttondemo;
+
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbInterface;
+import android.hardware.usb.UsbManager;
+import android.hardware.usb.UsbRequest;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+
+class UsbHidTransport implements HidTransport {
+    private static final String TAG = "StatusButton-Usb";
+
+    private static final int USB_VID = 0x04E7;
+    private static final int USB_PID = 0xA106;
+
+    private final Context mCtxt;
+    private final UsbManager mUsbManager;
+
+    private UsbDevice           mBtn;
+    private UsbEndpoint         mBtnEpOut;
+    private UsbEndpoint         mBtnEpIn;
+    private UsbDeviceConnection mBtnConnection;
+    private UsbInterface        mBtnInterface;
+    private UsbRequest          mBtnRequestIn;
+    private UsbRequest          mBtnRequestOut;
+
+
+    UsbHidTransport(Context ctxt) {
+        mCtxt = ctxt;
+        mUsbManager = (UsbManager) ctxt.getSystemService(Context.USB_SERVICE);
+    }
+
+
+    @Override
+    public boolean matches(Intent intent) {
+        UsbDevice dev = (UsbDevice) intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
+        return dev != null && dev.getVendorId() == USB_VID && dev.getProductId() == USB_PID;
+    }
+
+
+    @Override
+    public int open() {
+        mBtn = findStatusButton();
+        if (mBtn == null) {
+            return StatusButton.RET_DEVICE_NOT_FOUND;
+        }
+
+        if (!mUsbManager.hasPermission(mBtn)) {
+            PendingIntent pi = PendingIntent.getBroadcast(mCtxt, 0, new Intent(StatusButton.ACTION_PERMISSION_REQUEST), 0);
+            mUsbManager.requestPermission(mBtn, pi);
+            return StatusButton.RET_NO_USB_PERMISSION;
+        }
+
+        for (int i = 0; i < mBtn.getInterfaceCount(); i++) {
+            UsbInterface usbInterface = mBtn.getInterface(i);
+            if (usbInterface.getInterfaceClass() == 3) {
+                mBtnInterface = usbInterface;
+                for (int j = 0; j < usbInterface.getEndpointCount(); j++) {
+                    if (usbInterface.getEndpoint(j).getDirection() == 0) {
+                        mBtnEpOut = usbInterface.getEndpoint(j);
+                    } else {
+                        mBtnEpIn = usbInterface.getEndpoint(j);
+                    }
+                }
+                break;
+            }
+        }
+
+        if (mBtnEpOut == null || mBtnEpIn == null) {
+            return StatusButton.RET_USB_EP_NOT_FOUND;
+        }
+
+        mBtnConnection = mUsbManager.openDevice(mBtn);
+        if (mBtnConnection == null) {
+            return StatusButton.RET_USB_CONNECTION_FAILED;
+        }
+
+        // Claim and initialize once per connection, close() releases them again.
+        mBtnConnection.claimInterface(mBtnInterface, true);
+        mBtnRequestOut = new UsbRequest();
+        mBtnRequestIn = new UsbRequest();
+        if (!mBtnRequestOut.initialize(mBtnConnection, mBtnEpOut) ||
+                !mBtnRequestIn.initialize(mBtnConnection, mBtnEpIn)) {
+            return StatusButton.RET_USB_CONNECTION_FAILED;
+        }
+
+        return StatusButton.RET_SUCCESS;
+    }
+
+
+    @Override
+    public void describe(HashMap<String, String> description) {
+        if (mBtn != null) {
+            description.put("sn", mBtn.getSerialNumber());
+            description.put("vid", String.valueOf(mBtn.getVendorId()));
+            description.put("pid", String.valueOf(mBtn.getProductId()));
+            description.put("manufacturer", mBtn.getManufacturerName());
+            description.put("product", mBtn.getProductName());
+        }
+    }
+
+
+    @Override
+    public int getProductId() {
+        return mBtn == null ? 0 : mBtn.getProductId();
+    }
+
+
+    @Override
+    public boolean transfer(ByteBuffer txData, ByteBuffer rxData) {
+        if (mBtnConnection == null) {
+            return false;
+        }
+
+        mBtnRequestOut.queue(txData, txData.capacity());
+        if (mBtnConnection.requestWait() == null) {
+            return false;
+        }
+
+        mBtnRequestIn.queue(rxData, rxData.capacity());
+        return mBtnConnection.requestWait() != null;
+    }
+
+
+    @Override
+    public void close() {
+        if (mBtnRequestOut != null) {
+            mBtnRequestOut.close();
+            mBtnRequestOut = null;
+        }
+        if (mBtnRequestIn != null) {
+            mBtnRequestIn.close();
+            mBtnRequestIn = null;
+        }
+        if (mBtnConnection != null) {
+            mBtnConnection.releaseInterface(mBtnInterface);
+            mBtnConnection.close();
+            mBtnConnection = null;
+        }
+        mBtn = null;
+        mBtnEpOut = null;
+        mBtnEpIn = null;
+        mBtnInterface = null;
+    }
+
+
+    private UsbDevice findStatusButton() {
+        for (UsbDevice dev : mUsbManager.getDeviceList().values()) {
+            if (dev.getVendorId() == USB_VID && dev.getProductId() == USB_PID) {
+                Log.i(TAG, "Status Button is found.");
+                return dev;
+            }
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,156 @@
+package com.oem.statusbuttondemo;
+
+import android.content.Intent;
+import android.os.SystemClock;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+
+/**
+ * In-memory Status Button speaking the same 64-byte reports as the real device.
+ * Intents carrying {@link #EXTRA_SIMULATED} are treated as coming from this device.
+ */
+public class SimulatedHidDevice implements HidTransport {
+    public static final String EXTRA_SIMULATED = "com.oem.statusbuttondemo.SIMULATED";
+    public static final int PRODUCT_ID = 0xA106;
+
+    private boolean mAttached = true;
+    private boolean mPressed;
+    private int mHandles;
+    private long mTransfers;
+    private long mPressedAt = -1;
+    private long mPressLatencyMs;
+    private int mPressReports;
+    private int mMissedPresses;
+    private int mMaxBuffers;
+    private final Set<ByteBuffer> mBuffers = Collections.newSetFromMap(new IdentityHashMap<>());
+
+
+    @Override
+    public boolean matches(Intent intent) {
+        return intent.getBooleanExtra(EXTRA_SIMULATED, false);
+    }
+
+
+    @Override
+    public synchronized int open() {
+        if (!mAttached) {
+            return StatusButton.RET_DEVICE_NOT_FOUND;
+        }
+        mHandles++;
+        mBuffers.clear();
+        return StatusButton.RET_SUCCESS;
+    }
+
+
+    @Override
+    public synchronized void describe(HashMap<String, String> description) {
+        description.put("sn", "SIM0001");
+        description.put("vid", "1255");
+        description.put("pid", String.valueOf(PRODUCT_ID));
+        description.put("manufacturer", "Simulated");
+        description.put("product", "Status Button");
+    }
+
+
+    @Override
+    public synchronized int getProductId() {
+        return mHandles == 0 ? 0 : PRODUCT_ID;
+    }
+
+
+    @Override
+    public synchronized boolean transfer(ByteBuffer txData, ByteBuffer rxData) {
+        if (mHandles == 0 || !mAttached) {
+            return false;
+        }
+        mTransfers++;
+        mBuffers.add(txData);
+        mBuffers.add(rxData);
+        mMaxBuffers = Math.max(mMaxBuffers, mBuffers.size());
+
+        if (txData.get(0) == 0x51) {
+            rxData.put(4, mPressed ? (byte) 0x00 : (byte) 0x01);
+        } else if (txData.get(0) == 0x50 && mPressedAt >= 0 && isLit(txData)) {
+            // First color report since the press, i.e. the button reacting to it.
+            mPressLatencyMs += SystemClock.uptimeMillis() - mPressedAt;
+            mPressReports++;
+            mPressedAt = -1;
+        }
+        return true;
+    }
+
+
+    @Override
+    public synchronized void close() {
+        if (mHandles > 0) {
+            mHandles--;
+        }
+    }
+
+
+    public synchronized void setAttached(boolean attached) {
+        mAttached = attached;
+    }
+
+
+    public synchronized void setPressed(boolean pressed) {
+        if (pressed && !mPressed) {
+            mPressedAt = SystemClock.uptimeMillis();
+        } else if (!pressed && mPressedAt >= 0) {
+            mMissedPresses++;
+            mPressedAt = -1;
+        }
+        mPressed = pressed;
+    }
+
+
+    public synchronized int getOpenHandles() {
+        return mHandles;
+    }
+
+
+    public synchronized long getTransfers() {
+        return mTransfers;
+    }
+
+
+    /**
+     * Total virtual time from setPressed(true) to the pressed color report, over all
+     * presses that got one.
+     */
+    public synchronized long getPressLatencyMs() {
+        return mPressLatencyMs;
+    }
+
+
+    public synchronized int getPressReports() {
+        return mPressReports;
+    }
+
+
+    /**
+     * Presses released before the button sent their color report.
+     */
+    public synchronized int getMissedPresses() {
+        return mMissedPresses;
+    }
+
+
+    private static boolean isLit(ByteBuffer txData) {
+        // Red, green and blue data bytes, 0x00 turns the light on.
+        return txData.get(3) == 0 || txData.get(11) == 0 || txData.get(15) == 0;
+    }
+
+
+    /**
+     * Largest number of distinct report buffers seen during a single connection.
+     */
+    public synchronized int getMaxBuffersPerConnection() {
+        return mMaxBuffers;
+    }
+}
@@ -0,0 +1,311 @@
+package com.oem.statusbuttondemo;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+
+import androidx.annotation.NonNull;
+import androidx.lifecycle.Lifecycle;
+import androidx.lifecycle.LifecycleOwner;
+import androidx.lifecycle.LifecycleRegistry;
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.LooperMode;
+import org.robolectric.shadows.ShadowLog;
+
+import java.io.File;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.*;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Endurance run of the full StatusButton state machine against {@link SimulatedHidDevice}
+ * on Robolectric's virtual clock. Each simulated hour has presses every half minute,
+ * color changes, one unplug/replug, one re-enumeration and a lifecycle stop/start;
+ * every fourth hour the button is destroyed and constructed again. Resource usage is
+ * sampled once per hour and the test fails when any of it keeps growing. Heap is checked
+ * by its slope, so a small steady leak fails no matter how long the run is.
+ *
+ * Run longer with ./gradlew test -Psoak.hours=72
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 30)
+@LooperMode(LooperMode.Mode.PAUSED)
+public class StatusButtonSoakTest implements LifecycleOwner {
+    private static final int HOURS = Integer.getInteger("soak.hours", 24);
+    private static final long MINUTE_MS = 60 * 1000;
+    // Allowed heap trend after GC. Noise between hourly samples is a few KB.
+    private static final long HEAP_SLOPE_PER_HOUR = 64 * 1024;
+    // Allowed drift of the mean press-to-light delay, a third of the 300 ms poll interval.
+    private static final long LATENCY_SLACK_MS = 100;
+
+    private final Context mCtxt = ApplicationProvider.getApplicationContext();
+    private final SimulatedHidDevice mDevice = new SimulatedHidDevice();
+    private final Handler mUiHandler = new Handler(Looper.getMainLooper()) {
+        @Override
+        public void handleMessage(@NonNull Message msg) {
+            if (msg.what == StatusButton.MSG_UPDATE_UI && !mButton.getDeviceDescription().isEmpty()) {
+                // Same as MainActivity.updateUi().
+                mButton.setPressedColor(mPressedColor);
+                mButton.setReleasedColor(mReleasedColor);
+            }
+        }
+    };
+
+    private final CountingExporter mTelemetry = new CountingExporter(mCtxt.getFilesDir());
+
+    private LifecycleRegistry mLifecycle;
+    private StatusButton mButton;
+    private int mPressedColor = StatusButton.LIGHT_COLOR_RED;
+    private int mReleasedColor = StatusButton.LIGHT_COLOR_BLUE;
+
+
+    @NonNull
+    @Override
+    public Lifecycle getLifecycle() {
+        return mLifecycle;
+    }
+
+
+    @Test
+    public void soak() throws Exception {
+        long[] heap = new long[HOURS];
+        long[] threads = new long[HOURS];
+        long[] fds = new long[HOURS];
+        long[] latency = new long[HOURS];
+
+        create();
+        for (int hour = 0; hour < HOURS; hour++) {
+            long pressLatency = mDevice.getPressLatencyMs();
+            int pressReports = mDevice.getPressReports();
+
+            for (int minute = 0; minute < 60; minute++) {
+                press(1500);
+                advance(28500);
+                press(800);
+                if (minute % 10 == 0) {
+                    changeColors();
+                }
+                if (minute == 30) {
+                    replug();
+                    advance(MINUTE_MS / 2 - 800 - 3000);
+                } else if (minute == 45) {
+                    // Re-enumeration while connected, e.g. a hub reset.
+                    broadcast(StatusButton.ACTION_ATTACHED);
+                    advance(MINUTE_MS / 2 - 800);
+                } else {
+                    advance(MINUTE_MS / 2 - 800);
+                }
+            }
+
+            if (hour % 4 == 3) {
+                destroy();
+                create();
+            } else {
+                restart();
+            }
+
+            latency[hour] = (mDevice.getPressLatencyMs() - pressLatency) / Math.max(1, mDevice.getPressReports() - pressReports);
+            // Robolectric keeps every Log call in memory, which is not the button's heap.
+            ShadowLog.clear();
+            heap[hour] = usedHeap();
+            threads[hour] = Thread.activeCount();
+            fds[hour] = openFileDescriptors();
+
+            System.out.printf("soak hour %3d: heap %6d KB, threads %3d, fds %4d, handles %d, %4d ms press latency%n",
+                    hour + 1, heap[hour] / 1024, threads[hour], fds[hour], mDevice.getOpenHandles(), latency[hour]);
+
+            assertEquals("StatusButton threads", 1, TestThreads.count("StatusButton"));
+            assertTrue("open device handles", mDevice.getOpenHandles() <= 1);
+        }
+        destroy();
+
+        assertEquals("StatusButton threads", 0, TestThreads.count("StatusButton"));
+        assertEquals("open device handles", 0, mDevice.getOpenHandles());
+        assertTrue("report buffers allocated per transaction", mDevice.getMaxBuffersPerConnection() <= 2);
+        assertTrue(mTelemetry.get(TelemetryExporter.EVT_CONNECTED) > 0);
+        assertEquals("every connect is followed by exactly one disconnect",
+                mTelemetry.get(TelemetryExporter.EVT_CONNECTED), mTelemetry.get(TelemetryExporter.EVT_DISCONNECTED));
+        // A 300 ms poll gives 12000 transfers an hour; make sure the virtual clock really ran.
+        assertTrue("polling stalled", mDevice.getTransfers() >= HOURS * 10000L);
+
+        assertSlope("heap", heap, HEAP_SLOPE_PER_HOUR);
+        assertBounded("live threads", threads, 2);
+        assertBounded("file descriptors", fds, 8);
+        assertEquals("presses the light never reacted to", 0, mDevice.getMissedPresses());
+        assertBounded("press latency", latency, LATENCY_SLACK_MS);
+    }
+
+
+    private void create() {
+        mLifecycle = new LifecycleRegistry(this);
+        mButton = new StatusButton(mCtxt, mLifecycle, mUiHandler, mDevice);
+        mButton.setTelemetryExporter(mTelemetry);
+        mLifecycle.handleLifecycleEvent(Lifecycle.Event.ON_CREATE);
+        mLifecycle.handleLifecycleEvent(Lifecycle.Event.ON_START);
+        mLifecycle.handleLifecycleEvent(Lifecycle.Event.ON_RESUME);
+        // Stands in for the first frame; Robolectric runs idle handlers only after a message.
+        mUiHandler.post(() -> { });
+        shadowOf(Looper.getMainLooper()).idle();
+        advance(1000);
+    }
+
+
+    private void restart() {
+        mLifecycle.handleLifecycleEvent(Lifecycle.Event.ON_PAUSE);
+        mLifecycle.handleLifecycleEvent(Lifecycle.Event.ON_STOP);
+        advance(1000);
+        mLifecycle.handleLifecycleEvent(Lifecycle.Event.ON_START);
+        mLifecycle.handleLifecycleEvent(Lifecycle.Event.ON_RESUME);
+        advance(1000);
+    }
+
+
+    private void destroy() throws InterruptedException {
+        Looper looper = mButton.getLooper();
+        mLifecycle.handleLifecycleEvent(Lifecycle.Event.ON_PAUSE);
+        mLifecycle.handleLifecycleEvent(Lifecycle.Event.ON_STOP);
+        mLifecycle.handleLifecycleEvent(Lifecycle.Event.ON_DESTROY);
+        looper.getThread().join(5000);
+        assertFalse("button thread still alive after ON_DESTROY", looper.getThread().isAlive());
+        shadowOf(Looper.getMainLooper()).idle();
+    }
+
+
+    private void press(long holdMs) {
+        mDevice.setPressed(true);
+        advance(holdMs);
+        mDevice.setPressed(false);
+    }
+
+
+    private void changeColors() {
+        mPressedColor = mPressedColor % 3 + 1;
+        mReleasedColor = mPressedColor % 3 + 1;
+        if (!mButton.getDeviceDescription().isEmpty()) {
+            mButton.setPressedColor(mPressedColor);
+            mButton.setReleasedColor(mReleasedColor);
+        }
+    }
+
+
+    private void replug() {
+        mDevice.setAttached(false);
+        broadcast(StatusButton.ACTION_DETACHED);
+        advance(2000);
+        mDevice.setAttached(true);
+        broadcast(StatusButton.ACTION_ATTACHED);
+        advance(1000);
+    }
+
+
+    private void broadcast(String action) {
+        mCtxt.sendBroadcast(new Intent(action).putExtra(SimulatedHidDevice.EXTRA_SIMULATED, true));
+        shadowOf(Looper.getMainLooper()).idle();
+    }
+
+
+    private void advance(long ms) {
+        shadowOf(mButton.getLooper()).idleFor(Duration.ofMillis(ms));
+        shadowOf(Looper.getMainLooper()).idle();
+        // UI updates may have queued more work for the button thread.
+        shadowOf(mButton.getLooper()).idle();
+    }
+
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+
+    private static long openFileDescriptors() {
+        String[] fds = new File("/proc/self/fd").list();
+        return fds == null ? 0 : fds.length;
+    }
+
+
+    private static long median(long[] samples, int from, int to) {
+        long[] range = Arrays.copyOfRange(samples, from, Math.max(from + 1, to));
+        Arrays.sort(range);
+        return range[range.length / 2];
+    }
+
+
+    /**
+     * The second half of the run may not rise above the first half by more than slack.
+     * The first hour is warm-up and is left out.
+     */
+    private static void assertBounded(String name, long[] samples, long slack) {
+        if (samples.length < 4) {
+            return;
+        }
+        int mid = samples.length / 2;
+        long baseline = median(samples, 1, mid);
+        long tail = median(samples, mid, samples.length);
+        assertTrue(name + " grows without bound: " + baseline + " -> " + tail + ", " + Arrays.toString(samples),
+                tail <= baseline + slack);
+    }
+
+
+    /**
+     * Least-squares slope of the hourly samples may not exceed maxPerHour. The first hour
+     * is warm-up and is left out. Needs at least eight hours.
+     */
+    private static void assertSlope(String name, long[] samples, long maxPerHour) {
+        // Too few points for a trend, one destroy/create step would dominate.
+        if (samples.length < 8) {
+            return;
+        }
+        int n = samples.length - 1;
+        double meanX = (n - 1) / 2.0;
+        double meanY = 0;
+        for (int i = 1; i < samples.length; i++) {
+            meanY += samples[i];
+        }
+        meanY /= n;
+        double covariance = 0;
+        double variance = 0;
+        for (int i = 1; i < samples.length; i++) {
+            double x = i - 1 - meanX;
+            covariance += x * (samples[i] - meanY);
+            variance += x * x;
+        }
+        double slope = covariance / variance;
+        assertTrue(String.format("%s grows by %.0f per hour, %s", name, slope, Arrays.toString(samples)),
+                slope <= maxPerHour);
+    }
+
+
+    /**
+     * Never started, only counts the events StatusButton records.
+     */
+    static class CountingExporter extends TelemetryExporter {
+        private final AtomicIntegerArray mEvents = new AtomicIntegerArray(16);
+
+        CountingExporter(File spillDir) {
+            super("127.0.0.1", 0, spillDir, 0, 16, 1000);
+        }
+
+        @Override
+        public void record(int event, int value) {
+            mEvents.incrementAndGet(event);
+        }
+
+        int get(int event) {
+            return mEvents.get(event);
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package com.oem.statusbuttondemo;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.NonNull;
+import androidx.lifecycle.Lifecycle;
+import androidx.lifecycle.LifecycleOwner;
+import androidx.lifecycle.LifecycleRegistry;
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.android.controller.ActivityController;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.LooperMode;
+
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Checks that StatusButton keeps thread creation and USB enumeration off the first
+ * frame, and prints how much main-thread time each startup step costs.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 30)
+@LooperMode(LooperMode.Mode.PAUSED)
+public class StatusButtonStartupTest implements LifecycleOwner {
+    // Main-thread budget for constructing and starting StatusButton, one 60 Hz frame.
+    private static final long FIRST_FRAME_BUDGET_MS = 16;
+
+    private final Context mCtxt = ApplicationProvider.getApplicationContext();
+    private final LifecycleRegistry mLifecycle = new LifecycleRegistry(this);
+    private final Handler mUiHandler = new Handler(Looper.getMainLooper());
+
+
+    @NonNull
+    @Override
+    public Lifecycle getLifecycle() {
+        return mLifecycle;
+    }
+
+
+    @Test
+    public void deferredUntilMainThreadIsIdle() throws Exception {
+        warmUp();
+        RecordingDevice device = new RecordingDevice();
+
+        long t = System.nanoTime();
+        StatusButton button = new StatusButton(mCtxt, mLifecycle, mUiHandler, device);
+        long construct = System.nanoTime() - t;
+
+        // Idle handlers run in the order they were added, these two bracket StartTask.
+        long[] idle = new long[2];
+        Looper.myQueue().addIdleHandler(() -> {
+            idle[0] = System.nanoTime();
+            return false;
+        });
+        mLifecycle.handleLifecycleEvent(Lifecycle.Event.ON_CREATE);
+        t = System.nanoTime();
+        mLifecycle.handleLifecycleEvent(Lifecycle.Event.ON_START);
+        long start = System.nanoTime() - t;
+        Looper.myQueue().addIdleHandler(() -> {
+            idle[1] = System.nanoTime();
+            return false;
+        });
+
+        t = System.nanoTime();
+        Map<String, String> lastKnown = button.getLastKnownDescription();
+        long cache = System.nanoTime() - t;
+
+        assertNull("button thread started before the first frame", button.getLooper());
+        assertNull("device opened before the first frame", device.mOpenThread);
+        assertTrue(lastKnown.isEmpty());
+
+        drawFirstFrame();
+        long deferred = idle[1] - idle[0];
+
+        assertNotNull(button.getLooper());
+        shadowOf(button.getLooper()).idle();
+        assertNotNull(device.mOpenThread);
+        assertNotSame("device opened on the main thread", Looper.getMainLooper().getThread(), device.mOpenThread);
+
+        System.out.printf("StatusButton main thread: constructor %d us, ON_START %d us, last known %d us, "
+                        + "deferred start %d us%n",
+                construct / 1000, start / 1000, cache / 1000, deferred / 1000);
+        assertTrue("first frame budget exceeded", (construct + start + cache) / 1000000 < FIRST_FRAME_BUDGET_MS);
+        // The deferred step lands on the frame after the first one, it gets the same budget.
+        assertTrue("deferred start budget exceeded", deferred / 1000000 < FIRST_FRAME_BUDGET_MS);
+
+        stop(button);
+    }
+
+
+    @Test
+    public void lastKnownDescriptionIsCached() throws Exception {
+        StatusButton button = new StatusButton(mCtxt, mLifecycle, mUiHandler, new SimulatedHidDevice());
+        mLifecycle.handleLifecycleEvent(Lifecycle.Event.ON_CREATE);
+        mLifecycle.handleLifecycleEvent(Lifecycle.Event.ON_START);
+        drawFirstFrame();
+        shadowOf(button.getLooper()).idle();
+        assertEquals("SIM0001", button.getDeviceDescription().get("sn"));
+        stop(button);
+
+        StatusButton next = new StatusButton(mCtxt, null, mUiHandler, new SimulatedHidDevice());
+        Map<String, String> lastKnown = next.getLastKnownDescription();
+        assertEquals("SIM0001", lastKnown.get("sn"));
+        assertEquals("Status Button", lastKnown.get("product"));
+        assertNull(next.getLooper());
+    }
+
+
+    @Test
+    public void mainActivityStartup() throws Exception {
+        ActivityController<MainActivity> controller = Robolectric.buildActivity(MainActivity.class);
+
+        long t = System.nanoTime();
+        controller.create();
+        long create = System.nanoTime() - t;
+        assertEquals("button thread started in onCreate", 0, TestThreads.count("StatusButton"));
+
+        t = System.nanoTime();
+        controller.start();
+        long start = System.nanoTime() - t;
+        assertEquals("button thread started in onStart", 0, TestThreads.count("StatusButton"));
+
+        t = System.nanoTime();
+        controller.resume().visible();
+        long resume = System.nanoTime() - t;
+        assertEquals("button thread started before the first frame", 0, TestThreads.count("StatusButton"));
+
+        System.out.printf("MainActivity main thread: onCreate %d us, onStart %d us, onResume %d us%n",
+                create / 1000, start / 1000, resume / 1000);
+        drawFirstFrame();
+        assertEquals(1, TestThreads.count("StatusButton"));
+
+        controller.pause().stop().destroy();
+        shadowOf(Looper.getMainLooper()).idle();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("StatusButton")) {
+                thread.join(5000);
+            }
+        }
+        assertEquals(0, TestThreads.count("StatusButton"));
+    }
+
+
+    /**
+     * Runs the whole start path once, so Robolectric's class instrumentation and the
+     * first thread start stay out of the numbers.
+     */
+    private void warmUp() throws InterruptedException {
+        SimulatedHidDevice detached = new SimulatedHidDevice();
+        // Detached, so nothing ends up in the last-known cache.
+        detached.setAttached(false);
+        LifecycleRegistry lifecycle = new LifecycleRegistry(this);
+        StatusButton button = new StatusButton(mCtxt, lifecycle, mUiHandler, detached);
+        button.getLastKnownDescription();
+        lifecycle.handleLifecycleEvent(Lifecycle.Event.ON_CREATE);
+        lifecycle.handleLifecycleEvent(Lifecycle.Event.ON_START);
+        drawFirstFrame();
+        Looper looper = button.getLooper();
+        shadowOf(looper).idle();
+        lifecycle.handleLifecycleEvent(Lifecycle.Event.ON_STOP);
+        lifecycle.handleLifecycleEvent(Lifecycle.Event.ON_DESTROY);
+        looper.getThread().join(5000);
+    }
+
+
+    /**
+     * Robolectric runs idle handlers only after dispatching a message, so post one the
+     * way the first traversal would.
+     */
+    private void drawFirstFrame() {
+        mUiHandler.post(() -> { });
+        shadowOf(Looper.getMainLooper()).idle();
+    }
+
+
+    private void stop(StatusButton button) throws InterruptedException {
+        Looper looper = button.getLooper();
+        mLifecycle.handleLifecycleEvent(Lifecycle.Event.ON_STOP);
+        mLifecycle.handleLifecycleEvent(Lifecycle.Event.ON_DESTROY);
+        looper.getThread().join(5000);
+        assertFalse(looper.getThread().isAlive());
+    }
+
+
+    static class RecordingDevice extends SimulatedHidDevice {
+        volatile Thread mOpenThread;
+
+        @Override
+        public synchronized int open() {
+            mOpenThread = Thread.currentThread();
+            return super.open();
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.oem.statusbuttondemo;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Local stand-in for the fleet collector. Accepts any number of exporters on one
+ * selector thread, parses their frames and keeps totals for the tests. Replayed frames
+ * are dropped by sequence number, tracked separately for every station and session.
+ */
+public class TelemetryCollector {
+    private final AtomicLong mFrames = new AtomicLong();
+    private final AtomicLong mEvents = new AtomicLong();
+    private final AtomicLong mDuplicates = new AtomicLong();
+    private final AtomicLong mMalformed = new AtomicLong();
+    private final long[] mCounters = new long[TelemetryExporter.CNT_COUNT];
+
+    private Selector mSelector;
+    private ServerSocketChannel mServer;
+    private Thread mThread;
+    private volatile boolean mRunning;
+    // Only touched on the selector thread.
+    private final HashMap<String, Long> mLastSequences = new HashMap<>();
+
+
+    public int start(int port) throws IOException {
+        mSelector = Selector.open();
+        mServer = ServerSocketChannel.open();
+        mServer.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        mServer.bind(new InetSocketAddress("127.0.0.1", port));
+        mServer.configureBlocking(false);
+        mServer.register(mSelector, SelectionKey.OP_ACCEPT);
+
+        mRunning = true;
+        mThread = new Thread(this::loop, "TelemetryCollector");
+        mThread.start();
+        return mServer.socket().getLocalPort();
+    }
+
+
+    public void stop() throws Exception {
+        mRunning = false;
+        mSelector.wakeup();
+        mThread.join();
+        for (SelectionKey key : mSelector.keys()) {
+            key.channel().close();
+        }
+        mSelector.close();
+    }
+
+
+    public long getFrames() {
+        return mFrames.get();
+    }
+
+
+    public long getEvents() {
+        return mEvents.get();
+    }
+
+
+    public long getDuplicates() {
+        return mDuplicates.get();
+    }
+
+
+    public long getMalformed() {
+        return mMalformed.get();
+    }
+
+
+    public synchronized long getCounter(int counter) {
+        return mCounters[counter];
+    }
+
+
+    public boolean awaitEvents(long events, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (mEvents.get() < events && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        return mEvents.get() >= events;
+    }
+
+
+    private void loop() {
+        try {
+            while (mRunning) {
+                mSelector.select(100);
+                Iterator<SelectionKey> it = mSelector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (key.isAcceptable()) {
+                        SocketChannel client = mServer.accept();
+                        if (client != null) {
+                            client.configureBlocking(false);
+                            client.register(mSelector, SelectionKey.OP_READ, ByteBuffer.allocate(64 * 1024));
+                        }
+                    } else if (key.isReadable()) {
+                        read(key);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+
+    private void read(SelectionKey key) throws IOException {
+        SocketChannel client = (SocketChannel) key.channel();
+        ByteBuffer buffer = (ByteBuffer) key.attachment();
+        int n;
+        try {
+            n = client.read(buffer);
+        } catch (IOException e) {
+            n = -1;
+        }
+        if (n < 0) {
+            // A partial frame left in the buffer was never acknowledged; the exporter resends it.
+            key.cancel();
+            client.close();
+            return;
+        }
+
+        buffer.flip();
+        while (buffer.remaining() >= 4) {
+            int length = buffer.getInt(buffer.position());
+            if (buffer.remaining() < 4 + length) {
+                break;
+            }
+            buffer.getInt();
+            parse(buffer, length);
+        }
+        buffer.compact();
+    }
+
+
+    private void parse(ByteBuffer buffer, int length) {
+        int end = buffer.position() + length;
+        if (buffer.getShort() != TelemetryExporter.FRAME_MAGIC || buffer.get() != TelemetryExporter.FRAME_VERSION) {
+            mMalformed.incrementAndGet();
+            buffer.position(end);
+            return;
+        }
+        buffer.get();
+        int station = buffer.getInt();
+        long session = buffer.getLong();
+        long sequence = buffer.getLong();
+        int events = buffer.getShort();
+        int counters = buffer.getShort();
+
+        String source = station + "/" + session;
+        Long last = mLastSequences.get(source);
+        if (last != null && sequence <= last) {
+            mDuplicates.incrementAndGet();
+            buffer.position(end);
+            return;
+        }
+        mLastSequences.put(source, sequence);
+
+        buffer.position(buffer.position() + events * TelemetryExporter.EVENT_SIZE);
+        synchronized (this) {
+            for (int i = 0; i < counters; i++) {
+                long value = buffer.getLong();
+                if (i < mCounters.length) {
+                    mCounters[i] = value;
+                }
+            }
+        }
+        mFrames.incrementAndGet();
+        mEvents.addAndGet(events);
+        buffer.position(end);
+    }
+}
@@ -0,0 +1,236 @@
+package com.oem.statusbuttondemo;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the exporter and the collector stand-in on the same machine over loopback.
+ */
+public class TelemetryExporterTest {
+    private static final int EVENTS = 1_000_000;
+
+    @Rule
+    public TemporaryFolder mTemp = new TemporaryFolder();
+
+    private TelemetryCollector mCollector;
+    private int mPort;
+
+
+    @Before
+    public void setUp() throws Exception {
+        mCollector = new TelemetryCollector();
+        mPort = mCollector.start(0);
+    }
+
+
+    @After
+    public void tearDown() throws Exception {
+        mCollector.stop();
+    }
+
+
+    @Test
+    public void throughput() throws Exception {
+        TelemetryExporter exporter = new TelemetryExporter("127.0.0.1", mPort, mTemp.getRoot(), 1, 65536, 5);
+        exporter.start();
+
+        long start = System.nanoTime();
+        long recordNanos = 0;
+        for (int i = 0; i < EVENTS; i++) {
+            long t = System.nanoTime();
+            exporter.record(TelemetryExporter.EVT_STATUS_CHANGED, i);
+            recordNanos += System.nanoTime() - t;
+            if ((i & 0xFFF) == 0) {
+                // Pace the producer a little, like the USB thread would.
+                Thread.yield();
+            }
+        }
+        exporter.stop();
+        assertTrue(exporter.awaitStopped(10000));
+
+        long dropped = exporter.getCounter(TelemetryExporter.CNT_EVENTS_DROPPED);
+        assertTrue(mCollector.awaitEvents(EVENTS - dropped, 10000));
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("Telemetry: %d events in %.2fs (%.0f events/s), %d dropped, %d frames, %.0f ns per record()%n",
+                mCollector.getEvents(), seconds, mCollector.getEvents() / seconds, dropped,
+                mCollector.getFrames(), (double) recordNanos / EVENTS);
+
+        assertEquals(EVENTS, mCollector.getEvents() + dropped);
+        assertEquals(0, mCollector.getMalformed());
+        assertEquals(0, exporter.getCounter(TelemetryExporter.CNT_FRAMES_SPILLED));
+        assertTrue("too many events dropped: " + dropped, dropped < EVENTS / 10);
+    }
+
+
+    @Test
+    public void spillsWhileOfflineAndReplays() throws Exception {
+        mCollector.stop();
+
+        TelemetryExporter exporter = new TelemetryExporter("127.0.0.1", mPort, mTemp.getRoot(), 2, 1024, 5);
+        exporter.start();
+        for (int i = 0; i < 5000; i++) {
+            exporter.record(TelemetryExporter.EVT_TX_FAILED, i);
+            if (i % 500 == 0) {
+                Thread.sleep(10);
+            }
+        }
+        Thread.sleep(100);
+        assertTrue(exporter.getCounter(TelemetryExporter.CNT_FRAMES_SPILLED) > 0);
+
+        mCollector = new TelemetryCollector();
+        mCollector.start(mPort);
+        exporter.record(TelemetryExporter.EVT_CONNECTED, 0);
+        exporter.stop();
+        assertTrue(exporter.awaitStopped(10000));
+
+        long dropped = exporter.getCounter(TelemetryExporter.CNT_EVENTS_DROPPED);
+        assertTrue(mCollector.awaitEvents(5001 - dropped, 10000));
+        assertEquals(5001, mCollector.getEvents() + dropped);
+        assertEquals(0, mCollector.getMalformed());
+        assertEquals(0, mTemp.getRoot().listFiles()[0].length());
+    }
+
+
+    @Test
+    public void restartsAfterStop() throws Exception {
+        TelemetryExporter exporter = new TelemetryExporter("127.0.0.1", mPort, mTemp.getRoot(), 1, 1024, 5);
+        for (int run = 0; run < 3; run++) {
+            exporter.start();
+            for (int i = 0; i < 100; i++) {
+                exporter.record(TelemetryExporter.EVT_STATUS_CHANGED, i);
+            }
+            // Restart without waiting, like an activity being recreated.
+            exporter.stop();
+        }
+        assertTrue(exporter.awaitStopped(10000));
+
+        long dropped = exporter.getCounter(TelemetryExporter.CNT_EVENTS_DROPPED);
+        assertTrue(mCollector.awaitEvents(300 - dropped, 10000));
+        assertEquals(300, mCollector.getEvents() + dropped);
+        assertEquals(0, mCollector.getDuplicates());
+    }
+
+
+    @Test
+    public void repairsCutOffSpillFile() throws Exception {
+        mCollector.stop();
+
+        TelemetryExporter previous = new TelemetryExporter("127.0.0.1", mPort, mTemp.getRoot(), 1, 1024, 5);
+        previous.start();
+        for (int i = 0; i < 300; i++) {
+            previous.record(TelemetryExporter.EVT_TX_FAILED, i);
+            if (i % 30 == 0) {
+                Thread.sleep(10);
+            }
+        }
+        previous.stop();
+        assertTrue(previous.awaitStopped(10000));
+
+        // The process was killed while appending its last frame.
+        File spill = mTemp.getRoot().listFiles()[0];
+        int lost;
+        try (RandomAccessFile file = new RandomAccessFile(spill, "rw")) {
+            long last = 0;
+            long position = 0;
+            while (position < file.length()) {
+                last = position;
+                file.seek(position);
+                position += 4 + file.readInt();
+            }
+            file.seek(last + 28);
+            lost = file.readShort();
+            file.setLength(last + 10);
+        }
+
+        mCollector = new TelemetryCollector();
+        mCollector.start(mPort);
+        TelemetryExporter exporter = new TelemetryExporter("127.0.0.1", mPort, mTemp.getRoot(), 1, 1024, 5);
+        exporter.start();
+        for (int i = 0; i < 100; i++) {
+            exporter.record(TelemetryExporter.EVT_STATUS_CHANGED, i);
+            Thread.sleep(1);
+        }
+        exporter.stop();
+        assertTrue(exporter.awaitStopped(10000));
+
+        long dropped = previous.getCounter(TelemetryExporter.CNT_EVENTS_DROPPED)
+                + exporter.getCounter(TelemetryExporter.CNT_EVENTS_DROPPED);
+        assertTrue(mCollector.awaitEvents(400 - lost - dropped, 10000));
+        Thread.sleep(100);
+        assertEquals(400 - lost, mCollector.getEvents() + dropped);
+        assertEquals(0, mCollector.getMalformed());
+        assertEquals(1, exporter.getCounter(TelemetryExporter.CNT_FRAMES_DROPPED));
+        assertEquals(0, spill.length());
+    }
+
+
+    @Test
+    public void twoStationsAtOnce() throws Exception {
+        TelemetryExporter first = new TelemetryExporter("127.0.0.1", mPort, mTemp.newFolder(), 1, 1024, 5);
+        TelemetryExporter second = new TelemetryExporter("127.0.0.1", mPort, mTemp.newFolder(), 2, 1024, 5);
+        first.start();
+        second.start();
+        for (int i = 0; i < 100000; i++) {
+            first.record(TelemetryExporter.EVT_STATUS_CHANGED, i);
+            second.record(TelemetryExporter.EVT_STATUS_CHANGED, i);
+            if (i % 1000 == 0) {
+                Thread.sleep(1);
+            }
+        }
+        first.stop();
+        second.stop();
+        assertTrue(first.awaitStopped(10000));
+        assertTrue(second.awaitStopped(10000));
+
+        long dropped = first.getCounter(TelemetryExporter.CNT_EVENTS_DROPPED)
+                + second.getCounter(TelemetryExporter.CNT_EVENTS_DROPPED);
+        assertTrue(mCollector.awaitEvents(200000 - dropped, 10000));
+        assertEquals(200000, mCollector.getEvents() + dropped);
+        assertEquals(0, mCollector.getDuplicates());
+    }
+
+
+    @Test
+    public void restartsWithLeftoverSpill() throws Exception {
+        mCollector.stop();
+
+        // The previous process spilled its frames and died before the collector came back.
+        TelemetryExporter previous = new TelemetryExporter("127.0.0.1", mPort, mTemp.getRoot(), 1, 1024, 5);
+        previous.start();
+        for (int i = 0; i < 1000; i++) {
+            previous.record(TelemetryExporter.EVT_TX_FAILED, i);
+            if (i % 100 == 0) {
+                Thread.sleep(10);
+            }
+        }
+        previous.stop();
+        assertTrue(previous.awaitStopped(10000));
+        assertTrue(previous.getCounter(TelemetryExporter.CNT_FRAMES_SPILLED) > 0);
+
+        mCollector = new TelemetryCollector();
+        mCollector.start(mPort);
+        TelemetryExporter exporter = new TelemetryExporter("127.0.0.1", mPort, mTemp.getRoot(), 1, 1024, 5);
+        exporter.start();
+        for (int i = 0; i < 100; i++) {
+            exporter.record(TelemetryExporter.EVT_STATUS_CHANGED, i);
+            Thread.sleep(1);
+        }
+        exporter.stop();
+        assertTrue(exporter.awaitStopped(10000));
+
+        long dropped = previous.getCounter(TelemetryExporter.CNT_EVENTS_DROPPED)
+                + exporter.getCounter(TelemetryExporter.CNT_EVENTS_DROPPED);
+        assertTrue(mCollector.awaitEvents(1100 - dropped, 10000));
+        assertEquals(1100, mCollector.getEvents() + dropped);
+        assertEquals(0, mCollector.getDuplicates());
+    }
+}
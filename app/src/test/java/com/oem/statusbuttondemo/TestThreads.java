@@ -0,0 +1,24 @@
+package com.oem.statusbuttondemo;
+
+
+/**
+ * Thread helpers shared by the StatusButton tests.
+ */
+public class TestThreads {
+    private TestThreads() {
+    }
+
+
+    /**
+     * Live threads with exactly this name.
+     */
+    public static int count(String name) {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.isAlive() && thread.getName().equals(name)) {
+                count++;
+            }
+        }
+        return count;
+    }
+}